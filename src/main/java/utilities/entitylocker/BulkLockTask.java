@@ -0,0 +1,244 @@
+package utilities.entitylocker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import utilities.entitylocker.EntityLocker.Deadline;
+import utilities.entitylocker.exception.EntityLockerException;
+
+/**
+ * Fork/join task of {@link EntityLocker#lockEachAndExecute(Collection, Function, BiConsumer, ForkJoinPool)}.
+ *
+ * The keys are processed in rounds. In every round but the last one a key that is locked by another thread is skipped
+ * and returned as the result of the task, so that it is retried in the next round. In the last round workers retry a busy key
+ * until it is locked. Only the pauses between the attempts are managed blockings, so that the pool does not start compensating
+ * threads for the task itself.
+ *
+ * Keys already locked by the calling thread are executed by the caller before the rounds, as only that thread can reenter their locks.
+ *
+ * When a key fails, the other workers stop taking new keys, and every forked subtask is joined before the failure is thrown.
+ *
+ * @param <T> The type of used entity keys
+ * @param <R> The type of the task result
+ */
+class BulkLockTask<T, R> extends RecursiveTask<List<Map.Entry<T, Integer>>> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int LEAF_SIZE = 32;
+
+	private static final int NON_BLOCKING_ROUNDS = 3;
+
+	private static final long RETRY_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private static final long MAX_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final EntityLocker<T> locker;
+
+	private final List<Map.Entry<T, Integer>> keys;
+
+	private final int from;
+
+	private final int to;
+
+	private final Function<? super T, ? extends R> task;
+
+	private final BiConsumer<? super T, ? super R> resultConsumer;
+
+	private final Deadline deadline;
+
+	private final boolean blocking;
+
+	private final AtomicBoolean failed;
+
+	private BulkLockTask(EntityLocker<T> locker, List<Map.Entry<T, Integer>> keys, int from, int to, Function<? super T, ? extends R> task,
+						 BiConsumer<? super T, ? super R> resultConsumer, Deadline deadline, boolean blocking, AtomicBoolean failed) {
+		this.locker = locker;
+		this.keys = keys;
+		this.from = from;
+		this.to = to;
+		this.task = task;
+		this.resultConsumer = resultConsumer;
+		this.deadline = deadline;
+		this.blocking = blocking;
+		this.failed = failed;
+	}
+
+	static <T, R> void execute(EntityLocker<T> locker, Collection<? extends T> keys, Function<? super T, ? extends R> task,
+							   BiConsumer<? super T, ? super R> resultConsumer, ForkJoinPool pool) {
+		// Duplicate keys are grouped, so that each key is locked once
+		Map<T, Integer> occurrences = new LinkedHashMap<>();
+		for (T key : keys) {
+			occurrences.merge(key, 1, Integer::sum);
+		}
+		Deadline deadline = EntityLocker.currentDeadline();
+		AtomicBoolean failed = new AtomicBoolean();
+
+		// Locks are reentrant only for the thread that holds them, so keys locked by the caller are not given to the workers
+		List<Map.Entry<T, Integer>> pending = new ArrayList<>(occurrences.size());
+		List<Map.Entry<T, Integer>> locked = new ArrayList<>();
+		for (Map.Entry<T, Integer> key : occurrences.entrySet()) {
+			(locker.isLockedByCurrentThread(key.getKey()) ? locked : pending).add(key);
+		}
+		if (!locked.isEmpty()) {
+			new BulkLockTask<>(locker, locked, 0, locked.size(), task, resultConsumer, deadline, true, failed).executeKeys();
+		}
+
+		for (int round = 0; !pending.isEmpty(); round++) {
+			if (round > 0) {
+				// Give other threads time to release the contended keys
+				LockSupport.parkNanos(RETRY_DELAY_NANOS << (round - 1));
+			}
+			pending = pool.invoke(new BulkLockTask<>(locker, pending, 0, pending.size(), task, resultConsumer,
+					deadline, round == NON_BLOCKING_ROUNDS, failed));
+		}
+	}
+
+	@Override
+	protected List<Map.Entry<T, Integer>> compute() {
+		if (to - from > LEAF_SIZE) {
+			int middle = (from + to) >>> 1;
+			BulkLockTask<T, R> right = new BulkLockTask<>(locker, keys, middle, to, task, resultConsumer, deadline, blocking, failed);
+			right.fork();
+			List<Map.Entry<T, Integer>> contended;
+			try {
+				contended = new BulkLockTask<>(locker, keys, from, middle, task, resultConsumer, deadline, blocking, failed).compute();
+			} catch (RuntimeException | Error e) {
+				// The right half stops at its next key, it is joined so that no task runs after the failure is thrown
+				try {
+					right.join();
+				} catch (RuntimeException | Error suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+			List<Map.Entry<T, Integer>> rightContended = right.join();
+			if (contended.isEmpty()) {
+				return rightContended;
+			}
+			contended.addAll(rightContended);
+			return contended;
+		}
+		return executeKeys();
+	}
+
+	/**
+	 * Executes the keys of this task one by one in the current thread
+	 * @return the keys that are locked by other threads and should be retried later
+	 */
+	private List<Map.Entry<T, Integer>> executeKeys() {
+		Deadline previous = EntityLocker.swapDeadline(deadline);
+		try {
+			List<Map.Entry<T, Integer>> contended = Collections.emptyList();
+			for (int i = from; i < to && !failed.get(); i++) {
+				Map.Entry<T, Integer> key = keys.get(i);
+				boolean done;
+				try {
+					done = execute(key.getKey(), key.getValue());
+				} catch (RuntimeException | Error e) {
+					failed.set(true);
+					throw e;
+				}
+				if (!done) {
+					if (contended.isEmpty()) {
+						contended = new ArrayList<>();
+					}
+					contended.add(key);
+				}
+			}
+			return contended;
+		} finally {
+			EntityLocker.swapDeadline(previous);
+		}
+	}
+
+	/**
+	 * @return false if the key is locked by another thread and should be retried later
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean execute(final T key, final int occurrences) {
+		final Object[] results = new Object[occurrences];
+		final boolean[] started = new boolean[1];
+		Runnable lockedTask = () -> {
+			started[0] = true;
+			for (int i = 0; i < occurrences; i++) {
+				results[i] = task.apply(key);
+			}
+		};
+
+		LockStatus status = tryExecute(key, lockedTask);
+		long retryDelayNanos = RETRY_DELAY_NANOS;
+		while (status == LockStatus.TIMEOUT && !started[0] && blocking && !failed.get()) {
+			park(retryDelayNanos);
+			retryDelayNanos = Math.min(retryDelayNanos << 1, MAX_RETRY_DELAY_NANOS);
+			status = tryExecute(key, lockedTask);
+		}
+		if (status == LockStatus.TIMEOUT) {
+			if (started[0]) {
+				// Retrying would repeat the side effects of the task
+				throw new EntityLockerException("Task of key '" + key + "' is executed, but the lock is reported as timed out");
+			}
+			return false;
+		}
+
+		if (resultConsumer != null) {
+			for (Object result : results) {
+				resultConsumer.accept(key, (R) result);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Executes the task if the key is free at the moment
+	 * @return {@link LockStatus#TIMEOUT} if the key is locked by another thread
+	 */
+	private LockStatus tryExecute(final T key, final Runnable lockedTask) {
+		// A timeout means that the key is busy, unless the deadline is over
+		EntityLocker.checkDeadline();
+		LockStatus status = locker.tryLockAndExecuteForStatus(key, lockedTask, 0, TimeUnit.NANOSECONDS);
+		if (status == LockStatus.INTERRUPTED) {
+			throw new EntityLockerException("Interrupted while locking key '" + key + "'");
+		}
+		return status;
+	}
+
+	/**
+	 * Waits before the next attempt to lock a busy key, the pool may start a compensating worker meanwhile
+	 */
+	private static void park(final long nanos) {
+		try {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				private boolean done;
+
+				@Override
+				public boolean block() throws InterruptedException {
+					LockSupport.parkNanos(nanos);
+					done = true;
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() {
+					return done;
+				}
+			});
+		} catch (InterruptedException e) {
+			throw new EntityLockerException(e.getMessage());
+		}
+	}
+}
@@ -1,16 +1,25 @@
 package utilities.entitylocker;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import utilities.entitylocker.exception.EntityLockerException;
+import utilities.entitylocker.exception.TimeoutLockException;
 import utilities.entitylocker.executor.DefaultLockExecutor;
 import utilities.entitylocker.executor.DeadlockPreventionLockExecutor;
 import utilities.entitylocker.executor.ILockExecutor;
+import utilities.entitylocker.trace.TracingLockExecutor;
 
 
 /**
@@ -23,7 +32,11 @@ import utilities.entitylocker.executor.ILockExecutor;
  * If there’s a concurrent request to lock the same entity key, the other thread should wait until the entity key becomes available.
  * EntityLocker allows concurrent execution of protected code on different entity keys.
  *
- * EntityLocker supports the deadlock prevention and allows to specify the waiting time for lock
+ * EntityLocker supports the deadlock prevention and allows to specify the waiting time for lock.
+ * The waiting time of all acquisitions made during a request can also be limited by a common deadline, see {@link #withDeadline(long, TimeUnit, Callable)}.
+ *
+ * For entities where concurrency should be limited rather than serialized, EntityLocker also provides per-key counting permits
+ * that allow at most N threads to execute protected code on the same entity key. Deadlock prevention does not cover permits.
  *
  * @param <T> The type of used entity keys
  * 
@@ -33,10 +46,16 @@ import utilities.entitylocker.executor.ILockExecutor;
 public class EntityLocker<T> {
 
 	private final static boolean DEFAULT_DEADLOCK_PREVENTION = false;
+
+	private final static ThreadLocal<Deadline> DEADLINES = new ThreadLocal<>();
+
+	private final static long DEADLINE_IS_OVER = -1;
 	
-	private final Map<Object, PacketReentrantLock> packetLocks = new HashMap<>();
-	
-	private final ReentrantLock mapLock = new ReentrantLock();
+	/*
+	 * Locks and semaphores are kept in segments guarded by their own ReentrantLocks, so that registration of owners
+	 * does not contend on a single lock and never blocks in a monitor (which pins the carrier of a virtual thread).
+	 */
+	private final MapSegment[] segments;
 	
 	private final ILockExecutor lockExecutor;
 
@@ -49,21 +68,88 @@ public class EntityLocker<T> {
 	 * @param deadlockPrevention - use executor with deadlock prevention (checking possible locks inside EntityLocker)
 	 */
 	public EntityLocker(boolean deadlockPrevention) {
-		lockExecutor = deadlockPrevention ? new DeadlockPreventionLockExecutor() : new DefaultLockExecutor();
+		this(deadlockPrevention ? new DeadlockPreventionLockExecutor() : new DefaultLockExecutor());
+	}
+
+	/**
+	 * Constructor for using EntityLocker with a custom executor, e.g. {@link TracingLockExecutor} for recording of the lock trace
+	 * @param lockExecutor - executor that acquires the locks and executes protected code
+	 */
+	public EntityLocker(ILockExecutor lockExecutor) {
+		if (lockExecutor == null) {
+			throw new EntityLockerException("Lock executor is null");
+		}
+		this.lockExecutor = lockExecutor;
+		int segmentCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		segments = new MapSegment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new MapSegment();
+		}
+	}
+
+	/**
+	 * Executes the task within a deadline scope of the current thread.
+	 * Every lock or permit acquisition inside the scope (including nested ones and ones of other EntityLocker instances)
+	 * waits at most for the time that is left until the deadline and fails with {@link TimeoutLockException} once it is over.
+	 * Nested scopes can only shorten the deadline of the outer scope.
+	 */
+	public static <R> R withDeadline(long timeout, TimeUnit timeUnit, final Callable<R> task) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		Deadline outer = enterDeadline(timeout, timeUnit);
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new EntityLockerException("An error occurred during execution", e);
+		} finally {
+			exitDeadline(outer);
+		}
+	}
+
+	public static void withDeadline(long timeout, TimeUnit timeUnit, final Runnable task) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		Deadline outer = enterDeadline(timeout, timeUnit);
+		try {
+			task.run();
+		} finally {
+			exitDeadline(outer);
+		}
 	}
 
 	public final <R> R lockAndExecute(final T key, final Callable<R> task) {
 		if (task == null) {
 			throw new EntityLockerException("Task is null");
 		}
-		return lockExecutor.execute(getOrCreatePacketLock(key), task);
+		if (DEADLINES.get() != null) {
+			return tryLockAndExecute(key, task, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		EntityLocker<?>.PacketReentrantLock lock = getOrCreatePacketLock(key);
+		try {
+			return lockExecutor.execute(lock, task);
+		} finally {
+			releasePacketLock(lock);
+		}
 	}
 
 	public final void lockAndExecute(final T key, final Runnable task) {
 		if (task == null) {
 			throw new EntityLockerException("Task is null");
 		}
-		lockExecutor.execute(getOrCreatePacketLock(key), task);
+		if (DEADLINES.get() != null) {
+			tryLockAndExecute(key, task, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			return;
+		}
+		EntityLocker<?>.PacketReentrantLock lock = getOrCreatePacketLock(key);
+		try {
+			lockExecutor.execute(lock, task);
+		} finally {
+			releasePacketLock(lock);
+		}
 	}
 
 	public final <R> R tryLockAndExecute(final T key, final Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
@@ -73,36 +159,460 @@ public class EntityLocker<T> {
 		if (lockTimeoutUnit == null) {
 			throw new EntityLockerException("TimeUnit is null");
 		}
-		return lockExecutor.tryExecute(getOrCreatePacketLock(key), task, lockTimeout, lockTimeoutUnit);
+		long timeoutNanos = boundByDeadline(lockTimeout, lockTimeoutUnit);
+		boolean byDeadline = isBoundByDeadline(timeoutNanos, lockTimeout, lockTimeoutUnit);
+		EntityLocker<?>.PacketReentrantLock lock = getOrCreatePacketLock(key);
+		try {
+			return lockExecutor.tryExecute(lock, task, byDeadline ? timeoutNanos : lockTimeout, byDeadline ? TimeUnit.NANOSECONDS : lockTimeoutUnit);
+		} finally {
+			releasePacketLock(lock);
+		}
 	}
 
 	public final void tryLockAndExecute(final T key, final Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
 		if (task == null) {
 			throw new EntityLockerException("Task is null");
 		}
-		lockExecutor.tryExecute(getOrCreatePacketLock(key), task, lockTimeout, lockTimeoutUnit);
+		if (lockTimeoutUnit == null) {
+			throw new EntityLockerException("TimeUnit is null");
+		}
+		long timeoutNanos = boundByDeadline(lockTimeout, lockTimeoutUnit);
+		boolean byDeadline = isBoundByDeadline(timeoutNanos, lockTimeout, lockTimeoutUnit);
+		EntityLocker<?>.PacketReentrantLock lock = getOrCreatePacketLock(key);
+		try {
+			lockExecutor.tryExecute(lock, task, byDeadline ? timeoutNanos : lockTimeout, byDeadline ? TimeUnit.NANOSECONDS : lockTimeoutUnit);
+		} finally {
+			releasePacketLock(lock);
+		}
+	}
+
+	/**
+	 * Same as {@link #tryLockAndExecute(Object, Callable, long, TimeUnit)}, but when the lock is not acquired in time (or the deadline
+	 * of the current thread is over) or the thread is interrupted, a shared result with the corresponding status is returned
+	 * instead of throwing an exception. Failures of the task itself are still thrown.
+	 */
+	public final <R> LockResult<R> tryLockAndExecuteForResult(final T key, final Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		if (lockTimeoutUnit == null) {
+			throw new EntityLockerException("TimeUnit is null");
+		}
+		long timeoutNanos = remainingTimeoutNanos(lockTimeout, lockTimeoutUnit);
+		if (timeoutNanos == DEADLINE_IS_OVER) {
+			return LockResult.failed(LockStatus.TIMEOUT);
+		}
+		EntityLocker<?>.PacketReentrantLock lock = getOrCreatePacketLock(key);
+		try {
+			return lockExecutor.tryExecuteForResult(lock, task, timeoutNanos, TimeUnit.NANOSECONDS);
+		} finally {
+			releasePacketLock(lock);
+		}
+	}
+
+	/**
+	 * Same as {@link #tryLockAndExecute(Object, Runnable, long, TimeUnit)}, but when the lock is not acquired in time (or the deadline
+	 * of the current thread is over) or the thread is interrupted, the corresponding status is returned instead of throwing an exception.
+	 * Failures of the task itself are still thrown.
+	 */
+	public final LockStatus tryLockAndExecuteForStatus(final T key, final Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		if (lockTimeoutUnit == null) {
+			throw new EntityLockerException("TimeUnit is null");
+		}
+		long timeoutNanos = remainingTimeoutNanos(lockTimeout, lockTimeoutUnit);
+		if (timeoutNanos == DEADLINE_IS_OVER) {
+			return LockStatus.TIMEOUT;
+		}
+		EntityLocker<?>.PacketReentrantLock lock = getOrCreatePacketLock(key);
+		try {
+			return lockExecutor.tryExecuteForStatus(lock, task, timeoutNanos, TimeUnit.NANOSECONDS);
+		} finally {
+			releasePacketLock(lock);
+		}
+	}
+
+	/**
+	 * Executes the task for each key under the lock of that key, see {@link #lockEachAndExecute(Collection, Function, BiConsumer, ForkJoinPool)}
+	 */
+	public final void lockEachAndExecute(final Collection<? extends T> keys, final Consumer<? super T> task) {
+		lockEachAndExecute(keys, task, ForkJoinPool.commonPool());
+	}
+
+	public final void lockEachAndExecute(final Collection<? extends T> keys, final Consumer<? super T> task, final ForkJoinPool pool) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		lockEachAndExecute(keys, key -> {
+			task.accept(key);
+			return null;
+		}, null, pool);
+	}
+
+	/**
+	 * Executes the task for each key under the lock of that key in the common fork/join pool,
+	 * see {@link #lockEachAndExecute(Collection, Function, BiConsumer, ForkJoinPool)}
+	 */
+	public final <R> void lockEachAndExecute(final Collection<? extends T> keys, final Function<? super T, ? extends R> task,
+											 final BiConsumer<? super T, ? super R> resultConsumer) {
+		lockEachAndExecute(keys, task, resultConsumer, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Executes the task for each key under the lock of that key in parallel on the fork/join pool and waits until all keys are done.
+	 *
+	 * Duplicate keys are locked once and the task is applied to every their occurrence under the same lock.
+	 * Keys that are locked by other threads are skipped and retried later, so that workers are not blocked while there are free keys.
+	 * Keys that are already locked by the calling thread are executed by the calling thread itself, since the workers would never get their locks.
+	 * In the last retry round workers keep trying the remaining keys and park between the attempts as a managed blocking of the pool,
+	 * while the task itself always runs outside of the managed blocking.
+	 * The deadline of the calling thread (see {@link #withDeadline(long, TimeUnit, Callable)}) applies to all keys.
+	 *
+	 * @param resultConsumer - receives results as soon as each key is done, called concurrently by the workers outside the lock of the key,
+	 *                       may be null. The first failure of the task or of the consumer stops the execution: no further keys are started,
+	 *                       the keys already in progress are finished and then the failure is thrown, some keys may remain unprocessed.
+	 */
+	public final <R> void lockEachAndExecute(final Collection<? extends T> keys, final Function<? super T, ? extends R> task,
+											 final BiConsumer<? super T, ? super R> resultConsumer, final ForkJoinPool pool) {
+		if (keys == null) {
+			throw new EntityLockerException("Keys are null");
+		}
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		if (pool == null) {
+			throw new EntityLockerException("Pool is null");
+		}
+		BulkLockTask.execute(this, keys, task, resultConsumer, pool);
+	}
+
+	/**
+	 * Executes protected code when one of at most {@code maxConcurrent} permits for the key is available.
+	 * All concurrent users of the same key must ask for the same number of permits.
+	 */
+	public final <R> R acquirePermitAndExecute(final T key, final int maxConcurrent, final Callable<R> task) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		PacketSemaphore semaphore = getOrCreatePacketSemaphore(key, maxConcurrent);
+		try {
+			acquirePermit(semaphore);
+			try {
+				return task.call();
+			} catch (TimeoutLockException e) {
+				// Timeout of a nested acquisition, e.g. when the deadline is over
+				throw e;
+			} catch (Exception e) {
+				throw new EntityLockerException("An error occurred during execution", e);
+			} finally {
+				semaphore.release();
+			}
+		} finally {
+			releasePacketSemaphore(semaphore);
+		}
+	}
+
+	public final void acquirePermitAndExecute(final T key, final int maxConcurrent, final Runnable task) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		PacketSemaphore semaphore = getOrCreatePacketSemaphore(key, maxConcurrent);
+		try {
+			acquirePermit(semaphore);
+			try {
+				task.run();
+			} finally {
+				semaphore.release();
+			}
+		} finally {
+			releasePacketSemaphore(semaphore);
+		}
+	}
+
+	public final <R> R tryAcquirePermitAndExecute(final T key, final int maxConcurrent, final Callable<R> task,
+												  long permitTimeout, TimeUnit permitTimeoutUnit) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		if (permitTimeoutUnit == null) {
+			throw new EntityLockerException("TimeUnit is null");
+		}
+		PacketSemaphore semaphore = getOrCreatePacketSemaphore(key, maxConcurrent);
+		try {
+			tryAcquirePermit(semaphore, permitTimeout, permitTimeoutUnit);
+			try {
+				return task.call();
+			} catch (TimeoutLockException e) {
+				// Timeout of a nested acquisition, e.g. when the deadline is over
+				throw e;
+			} catch (Exception e) {
+				throw new EntityLockerException("An error occurred during execution", e);
+			} finally {
+				semaphore.release();
+			}
+		} finally {
+			releasePacketSemaphore(semaphore);
+		}
+	}
+
+	public final void tryAcquirePermitAndExecute(final T key, final int maxConcurrent, final Runnable task,
+												 long permitTimeout, TimeUnit permitTimeoutUnit) {
+		if (task == null) {
+			throw new EntityLockerException("Task is null");
+		}
+		if (permitTimeoutUnit == null) {
+			throw new EntityLockerException("TimeUnit is null");
+		}
+		PacketSemaphore semaphore = getOrCreatePacketSemaphore(key, maxConcurrent);
+		try {
+			tryAcquirePermit(semaphore, permitTimeout, permitTimeoutUnit);
+			try {
+				task.run();
+			} finally {
+				semaphore.release();
+			}
+		} finally {
+			releasePacketSemaphore(semaphore);
+		}
 	}
 
-	private PacketReentrantLock getOrCreatePacketLock(final T key) {
-		PacketReentrantLock lock = packetLocks.get(key);
-		if (lock != null) {
-			return lock;
+	private static void acquirePermit(final PacketSemaphore semaphore) {
+		if (DEADLINES.get() != null) {
+			tryAcquirePermit(semaphore, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			return;
 		}
-		mapLock.lock();
 		try {
-			lock = packetLocks.get(key);
+			semaphore.acquire();
+		} catch (InterruptedException e) {
+			throw new EntityLockerException(e.getMessage());
+		}
+	}
+
+	private static void tryAcquirePermit(final PacketSemaphore semaphore, long permitTimeout, TimeUnit permitTimeoutUnit) {
+		long timeoutNanos = boundByDeadline(permitTimeout, permitTimeoutUnit);
+		try {
+			if (!semaphore.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+				throw isBoundByDeadline(timeoutNanos, permitTimeout, permitTimeoutUnit)
+						? new TimeoutLockException(timeoutNanos, TimeUnit.NANOSECONDS)
+						: new TimeoutLockException(permitTimeout, permitTimeoutUnit);
+			}
+		} catch (InterruptedException e) {
+			throw new EntityLockerException(e.getMessage());
+		}
+	}
+
+	private static Deadline enterDeadline(long timeout, TimeUnit timeUnit) {
+		if (timeUnit == null) {
+			throw new EntityLockerException("TimeUnit is null");
+		}
+		Deadline outer = DEADLINES.get();
+		Deadline deadline = new Deadline(timeout, timeUnit);
+		DEADLINES.set(outer != null && outer.deadlineNanos - deadline.deadlineNanos < 0 ? outer : deadline);
+		return outer;
+	}
+
+	private static void exitDeadline(final Deadline outer) {
+		if (outer == null) {
+			DEADLINES.remove();
+		} else {
+			DEADLINES.set(outer);
+		}
+	}
+
+	/**
+	 * @return the timeout in nanoseconds shortened to the time that is left until the deadline of the current thread
+	 * @throws TimeoutLockException if the deadline is already over
+	 */
+	private static long boundByDeadline(long timeout, TimeUnit timeUnit) {
+		long timeoutNanos = remainingTimeoutNanos(timeout, timeUnit);
+		if (timeoutNanos == DEADLINE_IS_OVER) {
+			Deadline deadline = DEADLINES.get();
+			throw new TimeoutLockException(deadline.timeout, deadline.timeUnit);
+		}
+		return timeoutNanos;
+	}
+
+	/**
+	 * @return true if the timeout given by the caller was shortened by the deadline, otherwise the caller's timeout
+	 * and unit are passed on, so that {@link TimeoutLockException} reports them
+	 */
+	private static boolean isBoundByDeadline(long timeoutNanos, long timeout, TimeUnit timeUnit) {
+		return timeoutNanos < Math.max(timeUnit.toNanos(timeout), 0);
+	}
+
+	/**
+	 * @return the timeout in nanoseconds shortened to the time that is left until the deadline of the current thread
+	 * or {@link #DEADLINE_IS_OVER} if the deadline is already over
+	 */
+	private static long remainingTimeoutNanos(long timeout, TimeUnit timeUnit) {
+		long timeoutNanos = Math.max(timeUnit.toNanos(timeout), 0);
+		Deadline deadline = DEADLINES.get();
+		if (deadline == null) {
+			return timeoutNanos;
+		}
+		long remainingNanos = deadline.deadlineNanos - System.nanoTime();
+		if (remainingNanos <= 0) {
+			return DEADLINE_IS_OVER;
+		}
+		return Math.min(timeoutNanos, remainingNanos);
+	}
+
+	/**
+	 * Returns the semaphore of the key and registers one more owner of it.
+	 * Every call must be paired with {@link #releasePacketSemaphore(PacketSemaphore)}, whether a permit was acquired or not.
+	 */
+	private PacketSemaphore getOrCreatePacketSemaphore(final T key, final int maxConcurrent) {
+		if (maxConcurrent <= 0) {
+			throw new EntityLockerException("Number of permits must be positive: " + maxConcurrent);
+		}
+		MapSegment segment = segmentFor(key);
+		PacketSemaphore semaphore;
+		segment.lock.lock();
+		try {
+			semaphore = segment.semaphores.get(key);
+			if (semaphore == null) {
+				semaphore = new PacketSemaphore(key, maxConcurrent);
+				segment.semaphores.put(key, semaphore);
+			} else if (semaphore.maxConcurrent != maxConcurrent) {
+				throw new EntityLockerException("Key '" + key + "' is already used with " + semaphore.maxConcurrent + " permits");
+			}
+			semaphore.owners.incrementAndGet();
+		} finally {
+			segment.lock.unlock();
+		}
+
+		return semaphore;
+	}
+
+	/**
+	 * Unregisters the owner of the semaphore and evicts the semaphore when nobody uses it.
+	 * The counter is changed under the segment lock, so a semaphore can not be evicted while a new owner is being registered.
+	 */
+	private void releasePacketSemaphore(final PacketSemaphore semaphore) {
+		MapSegment segment = segmentFor(semaphore.key);
+		segment.lock.lock();
+		try {
+			if (semaphore.owners.decrementAndGet() == 0) {
+				segment.semaphores.remove(semaphore.key);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the lock of the key and registers one more owner of it.
+	 * Every call must be paired with {@link #releasePacketLock(EntityLocker.PacketReentrantLock)}, whether the lock was acquired or not.
+	 */
+	private EntityLocker<?>.PacketReentrantLock getOrCreatePacketLock(final T key) {
+		MapSegment segment = segmentFor(key);
+		EntityLocker<?>.PacketReentrantLock lock;
+		segment.lock.lock();
+		try {
+			lock = segment.locks.get(key);
 			if (lock == null) {
 				lock = new PacketReentrantLock(key);
-				packetLocks.put(key, lock);
+				segment.locks.put(key, lock);
 			}
 			lock.owners.incrementAndGet();
 		} finally {
-			mapLock.unlock();
+			segment.lock.unlock();
 		}
 
 		return lock;
 	}
 
+	/**
+	 * Unregisters the owner of the lock and evicts the lock when nobody uses it.
+	 */
+	private void releasePacketLock(final EntityLocker<?>.PacketReentrantLock lock) {
+		MapSegment segment = segmentFor(lock.key);
+		segment.lock.lock();
+		try {
+			if (lock.owners.decrementAndGet() == 0) {
+				segment.locks.remove(lock.key);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	private MapSegment segmentFor(final Object key) {
+		int hash = Objects.hashCode(key);
+		return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+	}
+
+	private static class MapSegment {
+		final Map<Object, EntityLocker<?>.PacketReentrantLock> locks = new HashMap<>();
+		final Map<Object, PacketSemaphore> semaphores = new HashMap<>();
+		final ReentrantLock lock = new ReentrantLock();
+	}
+
+	/**
+	 * @return true if the key is locked by the current thread
+	 */
+	boolean isLockedByCurrentThread(final T key) {
+		MapSegment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			EntityLocker<?>.PacketReentrantLock lock = segment.locks.get(key);
+			return lock != null && lock.isHeldByCurrentThread();
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the deadline of the current thread or null if there is no deadline scope
+	 */
+	static Deadline currentDeadline() {
+		return DEADLINES.get();
+	}
+
+	/**
+	 * Replaces the deadline of the current thread, used to carry the deadline of the caller over to worker threads
+	 * @return the previous deadline of the current thread
+	 */
+	static Deadline swapDeadline(final Deadline deadline) {
+		Deadline previous = DEADLINES.get();
+		exitDeadline(deadline);
+		return previous;
+	}
+
+	/**
+	 * @throws TimeoutLockException if the deadline of the current thread is over
+	 */
+	static void checkDeadline() {
+		boundByDeadline(0, TimeUnit.NANOSECONDS);
+	}
+
+	static class Deadline {
+		final long deadlineNanos;
+		final long timeout;
+		final TimeUnit timeUnit;
+
+		Deadline(long timeout, TimeUnit timeUnit) {
+			// Limit the timeout, so that the deadline does not overflow
+			this.deadlineNanos = System.nanoTime() + Math.min(timeUnit.toNanos(timeout), Long.MAX_VALUE >> 1);
+			this.timeout = timeout;
+			this.timeUnit = timeUnit;
+		}
+	}
+
+	private static class PacketSemaphore extends Semaphore {
+		final AtomicLong owners = new AtomicLong(0);
+		final int maxConcurrent;
+		private final Object key;
+
+		PacketSemaphore(Object key, int maxConcurrent) {
+			super(maxConcurrent);
+			this.key = key;
+			this.maxConcurrent = maxConcurrent;
+		}
+	}
+
 	public class PacketReentrantLock extends ReentrantLock {
 		final AtomicLong owners = new AtomicLong(0);
 		private final T key;
@@ -111,21 +621,6 @@ public class EntityLocker<T> {
 			this.key = key;
 		}
 
-		@Override
-		public void unlock() {
-			super.unlock();
-			if (owners.decrementAndGet() == 0) {
-				mapLock.lock();
-				try {
-					if (owners.decrementAndGet() == 0) {
-						packetLocks.remove(key);
-					}
-				} finally {
-					mapLock.unlock();
-				}
-			}
-		}
-
 		@Override
 		public Thread getOwner(){
 			return super.getOwner();
@@ -0,0 +1,63 @@
+package utilities.entitylocker;
+
+/**
+ * Result of the non-throwing lock acquisition, see {@link EntityLocker#tryLockAndExecuteForResult(Object, java.util.concurrent.Callable, long, java.util.concurrent.TimeUnit)}
+ *
+ * Results of failed acquisitions are shared instances, so a failed acquisition does not allocate anything.
+ *
+ * @param <R> The type of the task result
+ */
+public final class LockResult<R> {
+
+	private static final LockResult<?> TIMEOUT = new LockResult<>(LockStatus.TIMEOUT, null);
+
+	private static final LockResult<?> INTERRUPTED = new LockResult<>(LockStatus.INTERRUPTED, null);
+
+	private final LockStatus status;
+
+	private final R value;
+
+	private LockResult(LockStatus status, R value) {
+		this.status = status;
+		this.value = value;
+	}
+
+	public static <R> LockResult<R> executed(R value) {
+		return new LockResult<>(LockStatus.EXECUTED, value);
+	}
+
+	/**
+	 * @return shared result for the given status of the failed acquisition
+	 */
+	@SuppressWarnings("unchecked")
+	public static <R> LockResult<R> failed(LockStatus status) {
+		switch (status) {
+			case TIMEOUT:
+				return (LockResult<R>) TIMEOUT;
+			case INTERRUPTED:
+				return (LockResult<R>) INTERRUPTED;
+			default:
+				throw new IllegalArgumentException("Not a failed status: " + status);
+		}
+	}
+
+	public LockStatus getStatus() {
+		return status;
+	}
+
+	public boolean isExecuted() {
+		return status == LockStatus.EXECUTED;
+	}
+
+	/**
+	 * @return result of the task or null if the task was not executed
+	 */
+	public R getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return isExecuted() ? "LockResult{" + status + ", " + value + "}" : "LockResult{" + status + "}";
+	}
+}
@@ -0,0 +1,21 @@
+package utilities.entitylocker;
+
+/**
+ * Outcome of the non-throwing lock acquisition, see {@link EntityLocker#tryLockAndExecuteForStatus(Object, Runnable, long, java.util.concurrent.TimeUnit)}
+ */
+public enum LockStatus {
+	/**
+	 * The lock was acquired and the task was executed
+	 */
+	EXECUTED,
+
+	/**
+	 * The lock was not acquired within the timeout or before the deadline of the current thread, the task was not executed
+	 */
+	TIMEOUT,
+
+	/**
+	 * The thread was interrupted while waiting for the lock, the task was not executed. The interrupted status of the thread is restored.
+	 */
+	INTERRUPTED
+}
@@ -9,4 +9,11 @@ public class EntityLockerException extends RuntimeException {
 	public EntityLockerException(String message) {
 		super(message);
 	}
+
+	/**
+	 * Wraps a failure of the protected code. The stack trace is not filled in, since the cause already has it.
+	 */
+	public EntityLockerException(String message, Throwable cause) {
+		super(message, cause, true, false);
+	}
 }
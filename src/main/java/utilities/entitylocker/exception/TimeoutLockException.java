@@ -2,6 +2,12 @@ package utilities.entitylocker.exception;
 
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Timeout while waiting for a lock.
+ *
+ * Timeouts are a normal outcome on contended keys, so the exception is created without a stack trace
+ * and its message is built only when requested, in the unit of the timeout.
+ */
 public class TimeoutLockException extends RuntimeException {
 
 	/**
@@ -14,11 +20,16 @@ public class TimeoutLockException extends RuntimeException {
 	private final TimeUnit timeUnit;
 
 	public TimeoutLockException(final long timeout, final TimeUnit timeUnit) {
-		super("Lock timeout after: " + timeUnit.toSeconds(timeout) + " seconds");
+		super(null, null, false, false);
 		this.timeout = timeout;
 		this.timeUnit = timeUnit;
 	}
 
+	@Override
+	public String getMessage() {
+		return "Lock timeout after: " + timeout + " " + timeUnit.name().toLowerCase();
+	}
+
 	public long getTimeout() {
 		return timeout;
 	}
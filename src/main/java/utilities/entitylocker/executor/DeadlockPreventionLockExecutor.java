@@ -1,5 +1,7 @@
 package utilities.entitylocker.executor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -9,29 +11,26 @@ import utilities.entitylocker.EntityLocker;
 import utilities.entitylocker.EntityLocker.PacketReentrantLock;
 import utilities.entitylocker.exception.DeadlockException;
 import utilities.entitylocker.exception.EntityLockerException;
+import utilities.entitylocker.exception.TimeoutLockException;
 
 public class DeadlockPreventionLockExecutor extends DefaultLockExecutor {
+	/*
+	 * Only threads that wait for a lock have an entry here, and it is removed as soon as the wait is over,
+	 * whether the lock is acquired or not.
+	 */
 	private final Map<Thread, PacketReentrantLock> desiredLockByThread = new ConcurrentHashMap<>();
 
 	public <R> R execute(final PacketReentrantLock lock, final Callable<R> task) {
 		R result;
 
-		try {
-			if (!lock.tryLock(500, TimeUnit.MILLISECONDS)) {
-				// Some thread already holds the lock so need to check a possible deadlock
-				checkDeadlock(lock);
-
-				lock.lock();
-				desiredLockByThread.remove(Thread.currentThread());
-			}
-		} catch (InterruptedException e) {
-			throw new EntityLockerException(e.getMessage());
-		}
+		lock(lock);
 
 		try {
 			result = task.call();
+		} catch (TimeoutLockException e) {
+			throw e;
 		} catch (Exception e) {
-			throw new EntityLockerException("An error occurred during execution: " + e.getMessage());
+			throw new EntityLockerException("An error occurred during execution", e);
 		} finally {
 			lock.unlock();
 		}
@@ -41,63 +40,137 @@ public class DeadlockPreventionLockExecutor extends DefaultLockExecutor {
 	}
 
 	public void execute(final PacketReentrantLock lock, final Runnable task) {
-		try {
-			if (!lock.tryLock(500, TimeUnit.MILLISECONDS)) {
-				// Some thread already holds the lock so need to check a possible deadlock
-				checkDeadlock(lock);
+		lock(lock);
 
-				lock.lock();
-				desiredLockByThread.remove(Thread.currentThread());
-			}
-		} catch (InterruptedException e) {
-			throw new EntityLockerException(e.getMessage());
+		try {
+			runTask(task);
+		} finally {
+			lock.unlock();
 		}
 
+	}
+
+	/**
+	 * Failures of the task are wrapped into {@link EntityLockerException}, also when the lock is acquired with a timeout
+	 */
+	@Override
+	protected void runTask(final Runnable task) {
 		try {
 			task.run();
+		} catch (TimeoutLockException e) {
+			throw e;
 		} catch (Exception e) {
-			throw new EntityLockerException("An error occurred during execution: " + e.getMessage());
+			throw new EntityLockerException("An error occurred during execution", e);
+		}
+	}
+
+	private void lock(final PacketReentrantLock lock) {
+		if (lock.tryLock()) {
+			return;
+		}
+		try {
+			// Some thread already holds the lock so need to check a possible deadlock
+			checkDeadlock(lock);
+
+			lock.lock();
 		} finally {
-			lock.unlock();
+			desiredLockByThread.remove(Thread.currentThread());
+		}
+	}
+
+	/**
+	 * Same as {@link #execute(PacketReentrantLock, Callable)}, the deadlock check is performed if the lock is not acquired
+	 * immediately, and then the thread waits for the rest of the timeout.
+	 */
+	@Override
+	protected boolean tryLock(final PacketReentrantLock lock, long lockTimeout, TimeUnit lockTimeoutUnit) throws InterruptedException {
+		if (lock.tryLock()) {
+			return true;
+		}
+		long timeoutNanos = lockTimeoutUnit.toNanos(lockTimeout);
+		if (timeoutNanos <= 0) {
+			return false;
 		}
+		try {
+			// Some thread already holds the lock so need to check a possible deadlock
+			checkDeadlock(lock);
 
+			return lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+		} finally {
+			desiredLockByThread.remove(Thread.currentThread());
+		}
 	}
 
 	private void checkDeadlock(final PacketReentrantLock lock) {
+		// The desired lock is published before its owner is read, otherwise a thread that closes a deadlock later could miss this link
+		Thread currentThread = Thread.currentThread();
+		desiredLockByThread.put(currentThread, lock);
 		Thread owner = lock.getOwner();
-		if (owner != null) {
-
-			/* The synchronization is required here.
-			 * If the deadlock exists in the chain of locks, then it will remain unchanged throughout the whole check.
-			 * However, if chain of locks changes during the deadlock check, it means there was no deadlock and
-			 * this is necessary to prevent the addition of new desired locks to map until the current check is done.
-			 */
-			synchronized (desiredLockByThread) {
-				desiredLockByThread.put(Thread.currentThread(), lock);
-
-				PacketReentrantLock desiredLock = desiredLockByThread.get(owner);
-				if (desiredLock != null) {
-					StringBuilder chainOfLocksBuilder = new StringBuilder();
-					chainOfLocksBuilder.append("\n\rCurrent thread '" + Thread.currentThread() + "' tries to lock '" + lock.getKey() + "'");
-
-					while (desiredLock != null) {
-						chainOfLocksBuilder.append("\n\rthat is locked by '" + owner + "' that tries to lock '" + desiredLock.getKey());
-
-						Thread ownerOfDesiredLock = desiredLock.getOwner();
-						if (ownerOfDesiredLock == null || ownerOfDesiredLock == owner) {
-							break;
-						}
-						owner = ownerOfDesiredLock;
+		if (owner == null) {
+			return;
+		}
 
-						if (owner == Thread.currentThread()) {
-							chainOfLocksBuilder.append(" that is locked by the current thread");
-							throw new DeadlockException("Deadlock is occurred. " + chainOfLocksBuilder.toString());
-						}
+		/* The chain of locks is walked without synchronization, so that waiting threads do not queue up on a common lock.
+		 * Since every waiting thread publishes its desired lock before the walk, the last thread that closes a deadlock
+		 * is guaranteed to see the whole chain. However, the walk may combine links observed at different times,
+		 * so a found chain is verified before the exception is thrown, see isDeadlock().
+		 */
+		List<Thread> owners = null;
+		List<PacketReentrantLock> desiredLocks = null;
+		PacketReentrantLock desiredLock = desiredLockByThread.get(owner);
+		while (desiredLock != null) {
+			if (owners == null) {
+				owners = new ArrayList<>();
+				desiredLocks = new ArrayList<>();
+			}
+			owners.add(owner);
+			desiredLocks.add(desiredLock);
 
-						desiredLock = desiredLockByThread.get(owner);
+			Thread ownerOfDesiredLock = desiredLock.getOwner();
+			if (ownerOfDesiredLock == null || ownerOfDesiredLock == owner) {
+				return;
+			}
+			if (ownerOfDesiredLock == currentThread) {
+				if (isDeadlock(lock, owners, desiredLocks)) {
+					StringBuilder chainOfLocksBuilder = new StringBuilder();
+					chainOfLocksBuilder.append("\n\rCurrent thread '" + currentThread + "' tries to lock '" + lock.getKey() + "'");
+					for (int i = 0; i < owners.size(); i++) {
+						chainOfLocksBuilder.append("\n\rthat is locked by '" + owners.get(i) + "' that tries to lock '" + desiredLocks.get(i).getKey());
 					}
+					chainOfLocksBuilder.append(" that is locked by the current thread");
+					throw new DeadlockException("Deadlock is occurred. " + chainOfLocksBuilder.toString());
 				}
+				return;
+			}
+			if (owners.size() > desiredLockByThread.size()) {
+				// The chain runs into a deadlock of other threads, that deadlock is reported to one of them
+				return;
+			}
+			owner = ownerOfDesiredLock;
+			desiredLock = desiredLockByThread.get(owner);
+		}
+	}
+
+	/**
+	 * Verifies the chain of locks backwards from the current thread. The last lock of the chain is held by the current thread,
+	 * so its waiter can not proceed, hence the lock it holds can not be released, and so on. Every verified link therefore stays
+	 * unchanged, and if all links are still in place, all threads of the chain are waiting for each other at the same time.
+	 *
+	 * @param lock - the lock the current thread waits for
+	 * @param owners - owners[i] holds the lock desired by owners[i - 1] (the first one holds {@code lock})
+	 * @param desiredLocks - desiredLocks[i] is the lock owners[i] waits for (the last one is held by the current thread)
+	 */
+	private boolean isDeadlock(final PacketReentrantLock lock, final List<Thread> owners, final List<PacketReentrantLock> desiredLocks) {
+		for (int i = owners.size() - 1; i >= 0; i--) {
+			Thread owner = owners.get(i);
+			if (desiredLockByThread.get(owner) != desiredLocks.get(i)) {
+				return false;
+			}
+			PacketReentrantLock heldLock = i == 0 ? lock : desiredLocks.get(i - 1);
+			if (heldLock.getOwner() != owner) {
+				return false;
 			}
 		}
+		return true;
 	}
 }
@@ -1,7 +1,10 @@
 package utilities.entitylocker.executor;
 
 import utilities.entitylocker.EntityLocker.PacketReentrantLock;
+import utilities.entitylocker.LockResult;
+import utilities.entitylocker.LockStatus;
 import utilities.entitylocker.exception.EntityLockerException;
+import utilities.entitylocker.exception.TimeoutLockException;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
@@ -13,8 +16,11 @@ public class DefaultLockExecutor implements ILockExecutor {
         R result;
         try {
             result = task.call();
+        } catch (TimeoutLockException e) {
+            // Timeout of a nested acquisition, e.g. when the deadline is over
+            throw e;
         } catch (Exception e) {
-            throw new EntityLockerException("An error occurred during execution: " + e.getMessage());
+            throw new EntityLockerException("An error occurred during execution", e);
         } finally {
             lock.unlock();
         }
@@ -24,7 +30,7 @@ public class DefaultLockExecutor implements ILockExecutor {
     public void execute(final PacketReentrantLock lock, final Runnable task) {
         lock.lock();
         try {
-            task.run();
+            runTask(task);
         } finally {
             lock.unlock();
         }
@@ -33,13 +39,13 @@ public class DefaultLockExecutor implements ILockExecutor {
 
     @Override
     public <R> R tryExecute(final PacketReentrantLock lock, final Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        acquire(lock, lockTimeout, lockTimeoutUnit);
         try {
-            lock.tryLock(lockTimeout, lockTimeoutUnit);
             return task.call();
-        } catch (InterruptedException e) {
-            throw new EntityLockerException(e.getMessage());
+        } catch (TimeoutLockException e) {
+            throw e;
         } catch (Exception e) {
-            throw new EntityLockerException("An error occurred during execution: " + e.getMessage());
+            throw new EntityLockerException("An error occurred during execution", e);
         } finally {
             lock.unlock();
         }
@@ -47,13 +53,83 @@ public class DefaultLockExecutor implements ILockExecutor {
 
     @Override
     public void tryExecute(final PacketReentrantLock lock, final Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        acquire(lock, lockTimeout, lockTimeoutUnit);
         try {
-            lock.tryLock(lockTimeout, lockTimeoutUnit);
-            task.run();
-        } catch (InterruptedException e) {
-            throw new EntityLockerException(e.getMessage());
+            runTask(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> LockResult<R> tryExecuteForResult(final PacketReentrantLock lock, final Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        LockStatus status = acquireForStatus(lock, lockTimeout, lockTimeoutUnit);
+        if (status != LockStatus.EXECUTED) {
+            return LockResult.failed(status);
+        }
+        try {
+            return LockResult.executed(task.call());
+        } catch (TimeoutLockException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EntityLockerException("An error occurred during execution", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LockStatus tryExecuteForStatus(final PacketReentrantLock lock, final Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        LockStatus status = acquireForStatus(lock, lockTimeout, lockTimeoutUnit);
+        if (status != LockStatus.EXECUTED) {
+            return status;
+        }
+        try {
+            runTask(task);
         } finally {
             lock.unlock();
         }
+        return LockStatus.EXECUTED;
+    }
+
+    /**
+     * Runs the protected code of all Runnable paths (whether the lock is waited for with or without a timeout),
+     * so that they report failures of the task the same way
+     */
+    protected void runTask(final Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Waits for the lock at most the given time
+     * @return true if the lock is acquired
+     */
+    protected boolean tryLock(final PacketReentrantLock lock, long lockTimeout, TimeUnit lockTimeoutUnit) throws InterruptedException {
+        return lock.tryLock(lockTimeout, lockTimeoutUnit);
+    }
+
+    /**
+     * Acquires the lock or throws {@link TimeoutLockException} if it is not available within the given time
+     */
+    private void acquire(final PacketReentrantLock lock, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        try {
+            if (!tryLock(lock, lockTimeout, lockTimeoutUnit)) {
+                throw new TimeoutLockException(lockTimeout, lockTimeoutUnit);
+            }
+        } catch (InterruptedException e) {
+            throw new EntityLockerException(e.getMessage());
+        }
+    }
+
+    /**
+     * Acquires the lock, a failure is reported by the returned status
+     */
+    private LockStatus acquireForStatus(final PacketReentrantLock lock, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        try {
+            return tryLock(lock, lockTimeout, lockTimeoutUnit) ? LockStatus.EXECUTED : LockStatus.TIMEOUT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return LockStatus.INTERRUPTED;
+        }
     }
 }
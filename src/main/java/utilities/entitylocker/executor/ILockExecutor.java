@@ -1,9 +1,13 @@
 package utilities.entitylocker.executor;
 
 import utilities.entitylocker.EntityLocker.PacketReentrantLock;
+import utilities.entitylocker.LockResult;
+import utilities.entitylocker.LockStatus;
+import utilities.entitylocker.exception.TimeoutLockException;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public interface ILockExecutor {
     <R> R execute(final PacketReentrantLock lock, final Callable<R> task);
@@ -13,4 +17,47 @@ public interface ILockExecutor {
     <R> R tryExecute(PacketReentrantLock lock, Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit);
 
     void tryExecute(PacketReentrantLock lock, Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit);
+
+    /**
+     * Same as {@link #tryExecute(PacketReentrantLock, Callable, long, TimeUnit)}, but a failed acquisition is reported by the result instead of an exception.
+     *
+     * The default implementation catches {@link TimeoutLockException} of {@code tryExecute} only if the task has not started,
+     * a timeout of an acquisition nested into the task is thrown as by the built-in executors. An interrupt is thrown as by {@code tryExecute}.
+     * Executors should override it without exceptions.
+     */
+    default <R> LockResult<R> tryExecuteForResult(PacketReentrantLock lock, Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        AtomicBoolean entered = new AtomicBoolean();
+        try {
+            return LockResult.executed(tryExecute(lock, () -> {
+                entered.set(true);
+                return task.call();
+            }, lockTimeout, lockTimeoutUnit));
+        } catch (TimeoutLockException e) {
+            if (entered.get()) {
+                throw e;
+            }
+            return LockResult.failed(LockStatus.TIMEOUT);
+        }
+    }
+
+    /**
+     * Same as {@link #tryExecute(PacketReentrantLock, Runnable, long, TimeUnit)}, but a failed acquisition is reported by the status instead of an exception.
+     *
+     * The default implementation has the same limitations as {@link #tryExecuteForResult(PacketReentrantLock, Callable, long, TimeUnit)}.
+     */
+    default LockStatus tryExecuteForStatus(PacketReentrantLock lock, Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+        AtomicBoolean entered = new AtomicBoolean();
+        try {
+            tryExecute(lock, () -> {
+                entered.set(true);
+                task.run();
+            }, lockTimeout, lockTimeoutUnit);
+            return LockStatus.EXECUTED;
+        } catch (TimeoutLockException e) {
+            if (entered.get()) {
+                throw e;
+            }
+            return LockStatus.TIMEOUT;
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package utilities.entitylocker.trace;
+
+/**
+ * Single lock acquisition recorded by {@link LockTraceRecorder}.
+ *
+ * All timestamps are {@link System#nanoTime()} values of the recording JVM, so only the differences between them are meaningful.
+ */
+public final class LockTraceEvent {
+
+	private final int keyHash;
+
+	private final long threadId;
+
+	private final long requestNanos;
+
+	private final long waitNanos;
+
+	private final long holdNanos;
+
+	public LockTraceEvent(int keyHash, long threadId, long requestNanos, long waitNanos, long holdNanos) {
+		this.keyHash = keyHash;
+		this.threadId = threadId;
+		this.requestNanos = requestNanos;
+		this.waitNanos = waitNanos;
+		this.holdNanos = holdNanos;
+	}
+
+	public int getKeyHash() {
+		return keyHash;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * @return the time when the thread asked for the lock
+	 */
+	public long getRequestNanos() {
+		return requestNanos;
+	}
+
+	/**
+	 * @return the time when the thread got the lock
+	 */
+	public long getAcquireNanos() {
+		return requestNanos + waitNanos;
+	}
+
+	/**
+	 * @return the time when the thread released the lock
+	 */
+	public long getReleaseNanos() {
+		return requestNanos + waitNanos + holdNanos;
+	}
+
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	public long getHoldNanos() {
+		return holdNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "LockTraceEvent{key=" + keyHash + ", thread=" + threadId + ", request=" + requestNanos
+				+ ", wait=" + waitNanos + ", hold=" + holdNanos + "}";
+	}
+}
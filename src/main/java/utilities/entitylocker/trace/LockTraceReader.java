@@ -0,0 +1,51 @@
+package utilities.entitylocker.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads traces written by {@link LockTraceRecorder}.
+ */
+public final class LockTraceReader {
+
+	private LockTraceReader() {
+	}
+
+	/**
+	 * Reads all records of the trace. The stream is not closed.
+	 *
+	 * @return events ordered by the time of the lock request
+	 * @throws IOException if the stream is not a lock trace or can not be read
+	 */
+	public static List<LockTraceEvent> read(final InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if (data.readInt() != LockTraceRecorder.MAGIC) {
+			throw new IOException("Not a lock trace");
+		}
+		int version = data.readInt();
+		if (version != LockTraceRecorder.VERSION) {
+			throw new IOException("Unsupported lock trace version: " + version);
+		}
+		// Wall clock time of the recording start is informational only
+		data.readLong();
+
+		List<LockTraceEvent> events = new ArrayList<>();
+		while (true) {
+			int keyHash;
+			try {
+				keyHash = data.readInt();
+			} catch (EOFException e) {
+				break;
+			}
+			events.add(new LockTraceEvent(keyHash, data.readLong(), data.readLong(), data.readLong(), data.readLong()));
+		}
+		events.sort(Comparator.comparingLong(LockTraceEvent::getRequestNanos));
+		return events;
+	}
+}
@@ -0,0 +1,144 @@
+package utilities.entitylocker.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockTraceRecorder writes a compact binary trace of lock acquisitions that can be replayed later by {@link LockTraceReplayer}.
+ *
+ * Trace format (big-endian):
+ * <pre>
+ * header: int magic, int version, long wall clock millis at the recording start
+ * record: int key hash, long thread id, long request nanos, long wait nanos, long hold nanos
+ * </pre>
+ *
+ * Records are collected into a small number of striped buffers (selected by thread id) and are written to the stream only
+ * when a buffer is full or the recorder is closed, so recording threads do not contend on the stream itself.
+ * Records of the trace are not ordered.
+ */
+public class LockTraceRecorder implements Closeable {
+
+	static final int MAGIC = 0x454C5452;
+
+	static final int VERSION = 1;
+
+	static final int RECORD_SIZE = 4 + 8 + 8 + 8 + 8;
+
+	private static final int RECORDS_PER_STRIPE = 1024;
+
+	private final DataOutputStream out;
+
+	private final ReentrantLock outLock = new ReentrantLock();
+
+	private final Stripe[] stripes;
+
+	private volatile boolean closed;
+
+	private volatile IOException failure;
+
+	public LockTraceRecorder(final OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream is null");
+		}
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+		this.out.writeLong(System.currentTimeMillis());
+
+		int stripeCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Records a single acquisition of the lock by the current thread. Records that come after {@link #close()} are ignored.
+	 * The recording never fails the locked code: if the trace can not be written, the recording is stopped and the error
+	 * is reported by {@link #close()}.
+	 *
+	 * @param keyHash - hash of the locked key
+	 * @param requestNanos - time when the lock was requested
+	 * @param acquireNanos - time when the lock was acquired
+	 * @param releaseNanos - time when the lock was released
+	 */
+	public void record(int keyHash, long requestNanos, long acquireNanos, long releaseNanos) {
+		if (closed) {
+			return;
+		}
+		long threadId = Thread.currentThread().getId();
+		Stripe stripe = stripes[(int) (threadId ^ (threadId >>> 32)) & (stripes.length - 1)];
+		stripe.lock.lock();
+		try {
+			if (closed) {
+				// The stripe has already been flushed by close()
+				return;
+			}
+			ByteBuffer buffer = stripe.buffer;
+			buffer.putInt(keyHash)
+					.putLong(threadId)
+					.putLong(requestNanos)
+					.putLong(acquireNanos - requestNanos)
+					.putLong(releaseNanos - acquireNanos);
+			if (!buffer.hasRemaining()) {
+				flush(buffer);
+			}
+		} catch (UncheckedIOException e) {
+			failure = e.getCause();
+			closed = true;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all collected records and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			for (Stripe stripe : stripes) {
+				stripe.lock.lock();
+				try {
+					flush(stripe.buffer);
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+		} catch (UncheckedIOException e) {
+			failure = e.getCause();
+		} finally {
+			out.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void flush(final ByteBuffer buffer) {
+		if (buffer.position() == 0) {
+			return;
+		}
+		outLock.lock();
+		try {
+			out.write(buffer.array(), 0, buffer.position());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			outLock.unlock();
+			buffer.clear();
+		}
+	}
+
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * RECORDS_PER_STRIPE);
+	}
+}
@@ -0,0 +1,214 @@
+package utilities.entitylocker.trace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import utilities.entitylocker.EntityLocker;
+import utilities.entitylocker.executor.DeadlockPreventionLockExecutor;
+import utilities.entitylocker.executor.DefaultLockExecutor;
+import utilities.entitylocker.executor.ILockExecutor;
+
+/**
+ * LockTraceReplayer drives an {@link ILockExecutor} with a trace recorded by {@link LockTraceRecorder}.
+ *
+ * Every recorded thread is replayed by its own thread. Top level acquisitions are started at their original offsets
+ * from the beginning of the trace (divided by the speed factor) regardless of how long the previous ones waited,
+ * while acquisitions nested into another one are started at their original offsets from the acquisition of the outer lock.
+ * Locks are held for the recorded hold time divided by the speed factor.
+ *
+ * Keys are replayed by their recorded hashes, so different keys with the same hash are replayed as one key.
+ */
+public class LockTraceReplayer {
+
+	private static final long START_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private final List<LockTraceEvent> events;
+
+	public LockTraceReplayer(final List<LockTraceEvent> events) {
+		if (events == null) {
+			throw new IllegalArgumentException("Events are null");
+		}
+		this.events = new ArrayList<>(events);
+		this.events.sort(Comparator.comparingLong(LockTraceEvent::getRequestNanos));
+	}
+
+	/**
+	 * Replays the trace and waits for the end of replay.
+	 *
+	 * @param lockExecutor - executor under test
+	 * @param speed - speed factor, 1 replays the trace at the original speed, {@link Double#POSITIVE_INFINITY} replays it without any pauses
+	 */
+	public ReplayReport replay(final ILockExecutor lockExecutor, double speed) throws InterruptedException {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Speed must be positive: " + speed);
+		}
+		EntityLocker<Integer> locker = new EntityLocker<>(lockExecutor);
+		long traceStart = events.isEmpty() ? 0 : events.get(0).getRequestNanos();
+		long replayStart = System.nanoTime() + START_DELAY_NANOS;
+
+		List<ThreadReplay> replays = new ArrayList<>();
+		for (List<Node> roots : buildTrees().values()) {
+			replays.add(new ThreadReplay(locker, roots, traceStart, replayStart, speed));
+		}
+		List<Thread> threads = new ArrayList<>(replays.size());
+		for (ThreadReplay replay : replays) {
+			Thread thread = new Thread(replay, "lock-trace-replay-" + threads.size());
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = Math.max(System.nanoTime() - replayStart, 0);
+
+		long operations = 0;
+		long failures = 0;
+		int waitCount = 0;
+		for (ThreadReplay replay : replays) {
+			operations += replay.operations;
+			failures += replay.failures;
+			waitCount += replay.waitCount;
+		}
+		long[] waits = new long[waitCount];
+		int offset = 0;
+		for (ThreadReplay replay : replays) {
+			System.arraycopy(replay.waits, 0, waits, offset, replay.waitCount);
+			offset += replay.waitCount;
+		}
+		Arrays.sort(waits);
+		return new ReplayReport(operations, failures, elapsed, waits);
+	}
+
+	/**
+	 * Restores nesting of acquisitions made by the same thread: an acquisition is nested into another one
+	 * if it was requested and released while the other lock was held.
+	 */
+	private Map<Long, List<Node>> buildTrees() {
+		Map<Long, List<Node>> rootsByThread = new LinkedHashMap<>();
+		Map<Long, Deque<Node>> stackByThread = new LinkedHashMap<>();
+		for (LockTraceEvent event : events) {
+			Deque<Node> stack = stackByThread.computeIfAbsent(event.getThreadId(), id -> new ArrayDeque<>());
+			while (!stack.isEmpty() && !stack.peek().contains(event)) {
+				stack.pop();
+			}
+			Node node = new Node(event);
+			if (stack.isEmpty()) {
+				rootsByThread.computeIfAbsent(event.getThreadId(), id -> new ArrayList<>()).add(node);
+			} else {
+				stack.peek().children.add(node);
+			}
+			stack.push(node);
+		}
+		return rootsByThread;
+	}
+
+	/**
+	 * Usage: LockTraceReplayer &lt;trace file&gt; [speed] [default|deadlock-prevention]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: LockTraceReplayer <trace file> [speed] [default|deadlock-prevention]");
+			System.exit(1);
+		}
+		List<LockTraceEvent> events;
+		try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+			events = LockTraceReader.read(in);
+		}
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+		ILockExecutor lockExecutor = args.length > 2 && "deadlock-prevention".equals(args[2])
+				? new DeadlockPreventionLockExecutor() : new DefaultLockExecutor();
+
+		System.out.println("Replaying " + events.size() + " lock acquisitions with "
+				+ lockExecutor.getClass().getSimpleName() + " at speed " + speed);
+		System.out.println(new LockTraceReplayer(events).replay(lockExecutor, speed));
+	}
+
+	private static class Node {
+		final LockTraceEvent event;
+		final List<Node> children = new ArrayList<>();
+
+		Node(LockTraceEvent event) {
+			this.event = event;
+		}
+
+		boolean contains(LockTraceEvent other) {
+			return other.getRequestNanos() >= event.getAcquireNanos() && other.getReleaseNanos() <= event.getReleaseNanos();
+		}
+	}
+
+	private static class ThreadReplay implements Runnable {
+		private final EntityLocker<Integer> locker;
+		private final List<Node> roots;
+		private final long traceStart;
+		private final long replayStart;
+		private final double speed;
+
+		long operations;
+		long failures;
+		long[] waits = new long[64];
+		int waitCount;
+
+		ThreadReplay(EntityLocker<Integer> locker, List<Node> roots, long traceStart, long replayStart, double speed) {
+			this.locker = locker;
+			this.roots = roots;
+			this.traceStart = traceStart;
+			this.replayStart = replayStart;
+			this.speed = speed;
+		}
+
+		@Override
+		public void run() {
+			for (Node root : roots) {
+				replay(root, replayStart + scale(root.event.getRequestNanos() - traceStart));
+			}
+		}
+
+		private void replay(final Node node, long requestAt) {
+			sleepUntil(requestAt);
+			final long requested = System.nanoTime();
+			try {
+				locker.lockAndExecute(node.event.getKeyHash(), () -> {
+					long acquired = System.nanoTime();
+					addWait(acquired - requested);
+					for (Node child : node.children) {
+						replay(child, acquired + scale(child.event.getRequestNanos() - node.event.getAcquireNanos()));
+					}
+					sleepUntil(acquired + scale(node.event.getHoldNanos()));
+				});
+				operations++;
+			} catch (RuntimeException e) {
+				failures++;
+			}
+		}
+
+		private long scale(long nanos) {
+			return (long) (nanos / speed);
+		}
+
+		private void addWait(long nanos) {
+			if (waitCount == waits.length) {
+				waits = Arrays.copyOf(waits, waitCount * 2);
+			}
+			waits[waitCount++] = nanos;
+		}
+
+		private static void sleepUntil(long deadline) {
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package utilities.entitylocker.trace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of replaying a lock trace by {@link LockTraceReplayer}.
+ */
+public final class ReplayReport {
+
+	private final long operations;
+
+	private final long failures;
+
+	private final long elapsedNanos;
+
+	private final long[] sortedWaitNanos;
+
+	ReplayReport(long operations, long failures, long elapsedNanos, long[] sortedWaitNanos) {
+		this.operations = operations;
+		this.failures = failures;
+		this.elapsedNanos = elapsedNanos;
+		this.sortedWaitNanos = sortedWaitNanos;
+	}
+
+	/**
+	 * @return number of successfully replayed lock acquisitions
+	 */
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	 * @return number of acquisitions that failed with an exception (e.g. a detected deadlock)
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return successfully replayed lock acquisitions per second
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : operations * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+	}
+
+	/**
+	 * @param percentile - percentile in range (0, 100]
+	 * @return time spent waiting for the lock in nanoseconds, 0 when nothing was replayed
+	 */
+	public long getWaitPercentileNanos(double percentile) {
+		if (percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be in range (0, 100]: " + percentile);
+		}
+		if (sortedWaitNanos.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile / 100 * sortedWaitNanos.length) - 1;
+		return sortedWaitNanos[Math.max(index, 0)];
+	}
+
+	@Override
+	public String toString() {
+		return String.format("operations: %d, failures: %d, elapsed: %d ms, throughput: %.1f ops/s%n"
+						+ "wait p50: %d us, p90: %d us, p99: %d us, p99.9: %d us, max: %d us",
+				operations, failures, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getThroughput(),
+				micros(50), micros(90), micros(99), micros(99.9), micros(100));
+	}
+
+	private long micros(double percentile) {
+		return TimeUnit.NANOSECONDS.toMicros(getWaitPercentileNanos(percentile));
+	}
+}
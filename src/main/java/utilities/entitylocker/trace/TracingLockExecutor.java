@@ -0,0 +1,136 @@
+package utilities.entitylocker.trace;
+
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import utilities.entitylocker.EntityLocker.PacketReentrantLock;
+import utilities.entitylocker.LockResult;
+import utilities.entitylocker.LockStatus;
+import utilities.entitylocker.executor.ILockExecutor;
+
+/**
+ * Executor that records every successful lock acquisition of the wrapped executor into {@link LockTraceRecorder}.
+ *
+ * The acquisition time is taken when the protected code starts and the release time when it finishes,
+ * so the recording adds only a few {@link System#nanoTime()} calls to the locked path.
+ * The record itself is written after the lock is released.
+ */
+public class TracingLockExecutor implements ILockExecutor {
+
+	private final ILockExecutor delegate;
+
+	private final LockTraceRecorder recorder;
+
+	public TracingLockExecutor(final ILockExecutor delegate, final LockTraceRecorder recorder) {
+		if (delegate == null || recorder == null) {
+			throw new IllegalArgumentException("Executor and recorder are required");
+		}
+		this.delegate = delegate;
+		this.recorder = recorder;
+	}
+
+	@Override
+	public <R> R execute(final PacketReentrantLock lock, final Callable<R> task) {
+		Trace trace = new Trace();
+		try {
+			return delegate.execute(lock, trace.wrap(task));
+		} finally {
+			trace.record(lock);
+		}
+	}
+
+	@Override
+	public void execute(final PacketReentrantLock lock, final Runnable task) {
+		Trace trace = new Trace();
+		try {
+			delegate.execute(lock, trace.wrap(task));
+		} finally {
+			trace.record(lock);
+		}
+	}
+
+	@Override
+	public <R> R tryExecute(final PacketReentrantLock lock, final Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		Trace trace = new Trace();
+		try {
+			return delegate.tryExecute(lock, trace.wrap(task), lockTimeout, lockTimeoutUnit);
+		} finally {
+			trace.record(lock);
+		}
+	}
+
+	@Override
+	public void tryExecute(final PacketReentrantLock lock, final Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		Trace trace = new Trace();
+		try {
+			delegate.tryExecute(lock, trace.wrap(task), lockTimeout, lockTimeoutUnit);
+		} finally {
+			trace.record(lock);
+		}
+	}
+
+	@Override
+	public <R> LockResult<R> tryExecuteForResult(final PacketReentrantLock lock, final Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		Trace trace = new Trace();
+		try {
+			return delegate.tryExecuteForResult(lock, trace.wrap(task), lockTimeout, lockTimeoutUnit);
+		} finally {
+			trace.record(lock);
+		}
+	}
+
+	@Override
+	public LockStatus tryExecuteForStatus(final PacketReentrantLock lock, final Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		Trace trace = new Trace();
+		try {
+			return delegate.tryExecuteForStatus(lock, trace.wrap(task), lockTimeout, lockTimeoutUnit);
+		} finally {
+			trace.record(lock);
+		}
+	}
+
+	/**
+	 * Timestamps of a single acquisition. They are taken inside the protected code, but recorded only after the delegate
+	 * has released the lock, so that writing of the trace never extends the hold time of the key.
+	 */
+	private final class Trace {
+		final long requestNanos = System.nanoTime();
+		long acquireNanos;
+		long releaseNanos;
+		boolean acquired;
+
+		<R> Callable<R> wrap(final Callable<R> task) {
+			return () -> {
+				acquired();
+				try {
+					return task.call();
+				} finally {
+					releaseNanos = System.nanoTime();
+				}
+			};
+		}
+
+		Runnable wrap(final Runnable task) {
+			return () -> {
+				acquired();
+				try {
+					task.run();
+				} finally {
+					releaseNanos = System.nanoTime();
+				}
+			};
+		}
+
+		private void acquired() {
+			acquired = true;
+			acquireNanos = System.nanoTime();
+		}
+
+		void record(final PacketReentrantLock lock) {
+			if (acquired) {
+				recorder.record(Objects.hashCode(lock.getKey()), requestNanos, acquireNanos, releaseNanos);
+			}
+		}
+	}
+}
@@ -1,15 +1,28 @@
 package utilities.entitylocker;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.junit.Test;
 
+import utilities.entitylocker.EntityLocker.PacketReentrantLock;
 import utilities.entitylocker.exception.DeadlockException;
+import utilities.entitylocker.exception.EntityLockerException;
+import utilities.entitylocker.exception.TimeoutLockException;
+import utilities.entitylocker.executor.DefaultLockExecutor;
+import utilities.entitylocker.executor.ILockExecutor;
 
 import static org.junit.Assert.*;
 
@@ -124,9 +137,9 @@ public class EntityLockerTest {
 
         try {
             latch.await();
-            // Expecting IllegalMonitorStateException after timeout
+            // Expecting TimeoutLockException after timeout
             assertNotNull(exception.get());
-            assertTrue(IllegalMonitorStateException.class == exception.get().getClass());
+            assertTrue(TimeoutLockException.class == exception.get().getClass());
         } catch (InterruptedException e) {
             fail(e.getMessage());
         }
@@ -311,6 +324,492 @@ public class EntityLockerTest {
         }
     }
     
+    @Test
+    public void testPermits() throws InterruptedException {
+        EntityLocker<Object> locker = new EntityLocker<>();
+        Object key1 = new Object();
+        CountDownLatch latch = new CountDownLatch(10);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            new Thread(() -> {
+                try {
+                    locker.acquirePermitAndExecute(key1, 3, () -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                        running.decrementAndGet();
+                    });
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assertEquals(3, maxRunning.get());
+
+        // All permits are released, so the semaphore is evicted and the key can be used with another number of permits
+        assertEquals("result", locker.acquirePermitAndExecute(key1, 1, () -> "result"));
+    }
+
+    @Test
+    public void testPermitTimeout() throws InterruptedException {
+        EntityLocker<Object> locker = new EntityLocker<>();
+        Object key1 = new Object();
+        CountDownLatch release = new CountDownLatch(1);
+
+        for (int i = 0; i < 2; i++) {
+            holdInAnotherThread(task -> locker.acquirePermitAndExecute(key1, 2, task), release);
+        }
+
+        try {
+            locker.tryAcquirePermitAndExecute(key1, 2, () -> fail("All permits are taken"), 100, TimeUnit.MILLISECONDS);
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertEquals(100, e.getTimeout());
+            assertEquals(TimeUnit.MILLISECONDS, e.getTimeUnit());
+        }
+
+        try {
+            locker.acquirePermitAndExecute(key1, 3, () -> fail("Different number of permits"));
+            fail("Expected EntityLockerException");
+        } catch (EntityLockerException e) {
+            assertNotNull(e.getMessage());
+        }
+
+        release.countDown();
+        assertEquals("result", locker.tryAcquirePermitAndExecute(key1, 2, () -> "result", 1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDeadline() throws InterruptedException {
+        EntityLocker<Object> locker = new EntityLocker<>();
+        Object key1 = new Object();
+        Object key2 = new Object();
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Another thread holds key2 for longer than the deadline
+        holdKeyInAnotherThread(locker, key2, release);
+
+        // The nested acquisition gets only the rest of the deadline instead of its own timeout
+        long start = System.nanoTime();
+        try {
+            EntityLocker.withDeadline(300, TimeUnit.MILLISECONDS, () -> locker.lockAndExecute(key1, () -> {
+                locker.tryLockAndExecute(key2, () -> fail("key2 is locked"), 10, TimeUnit.SECONDS);
+            }));
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Elapsed " + elapsedMs, elapsedMs >= 250 && elapsedMs < 2000);
+        }
+
+        // Once the deadline is over, acquisitions fail fast even for free keys
+        AtomicBoolean executed = new AtomicBoolean();
+        try {
+            EntityLocker.withDeadline(50, TimeUnit.MILLISECONDS, () -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                locker.lockAndExecute(key1, () -> executed.set(true));
+            });
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertEquals(50, e.getTimeout());
+            assertFalse(executed.get());
+        }
+
+        // The deadline scope is over, so the thread can wait without limits again
+        release.countDown();
+        assertEquals("result", locker.lockAndExecute(key2, () -> "result"));
+        assertEquals("result", EntityLocker.withDeadline(1, TimeUnit.SECONDS, () -> locker.lockAndExecute(key1, () -> "result")));
+    }
+
+    @Test
+    public void testDeadlineInPermit() throws InterruptedException {
+        EntityLocker<Object> locker = new EntityLocker<>();
+        Object key1 = new Object();
+        Object busyKey = new Object();
+        CountDownLatch release = new CountDownLatch(1);
+        holdKeyInAnotherThread(locker, busyKey, release);
+
+        // The timeout of the nested acquisition is not wrapped by the permit
+        try {
+            EntityLocker.withDeadline(100, TimeUnit.MILLISECONDS, () -> locker.acquirePermitAndExecute(key1, 2, () -> {
+                locker.lockAndExecute(busyKey, () -> fail("busyKey is locked"));
+                return "result";
+            }));
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertNotNull(e.getMessage());
+        }
+        try {
+            EntityLocker.withDeadline(100, TimeUnit.MILLISECONDS, () -> locker.tryAcquirePermitAndExecute(key1, 2, () -> {
+                locker.lockAndExecute(busyKey, () -> fail("busyKey is locked"));
+                return "result";
+            }, 1, TimeUnit.SECONDS));
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertNotNull(e.getMessage());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testDeadlineKeepsExceptions() {
+        IllegalStateException failure = new IllegalStateException("failure");
+        Runnable task = () -> {
+            throw failure;
+        };
+
+        // The deadline scope does not change how failures of the task are reported
+        EntityLocker<Object> locker = new EntityLocker<>(true);
+        Exception withoutDeadline = catchException(() -> locker.lockAndExecute(new Object(), task));
+        Exception withDeadline = catchException(() -> EntityLocker.withDeadline(1, TimeUnit.SECONDS, () -> locker.lockAndExecute(new Object(), task)));
+        assertEquals(EntityLockerException.class, withoutDeadline.getClass());
+        assertEquals(EntityLockerException.class, withDeadline.getClass());
+        assertSame(failure, withoutDeadline.getCause());
+        assertSame(failure, withDeadline.getCause());
+
+        EntityLocker<Object> defaultLocker = new EntityLocker<>();
+        assertSame(failure, catchException(() -> defaultLocker.lockAndExecute(new Object(), task)));
+        assertSame(failure, catchException(() -> EntityLocker.withDeadline(1, TimeUnit.SECONDS, () -> defaultLocker.lockAndExecute(new Object(), task))));
+    }
+
+    private static Exception catchException(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Exception e) {
+            return e;
+        }
+        fail("Expected exception");
+        return null;
+    }
+
+    @Test
+    public void testStatusResult() throws InterruptedException {
+        EntityLocker<Object> locker = new EntityLocker<>();
+        Object key1 = new Object();
+        CountDownLatch release = new CountDownLatch(1);
+        holdKeyInAnotherThread(locker, key1, release);
+
+        // Failed acquisitions are reported without exceptions
+        LockResult<String> result = locker.tryLockAndExecuteForResult(key1, () -> "result", 50, TimeUnit.MILLISECONDS);
+        assertEquals(LockStatus.TIMEOUT, result.getStatus());
+        assertFalse(result.isExecuted());
+        assertNull(result.getValue());
+        assertSame(result, locker.tryLockAndExecuteForResult(key1, () -> "result", 0, TimeUnit.MILLISECONDS));
+        assertEquals(LockStatus.TIMEOUT, locker.tryLockAndExecuteForStatus(key1, () -> fail("key1 is locked"), 50, TimeUnit.MILLISECONDS));
+        assertEquals(LockStatus.TIMEOUT, EntityLocker.withDeadline(0, TimeUnit.MILLISECONDS,
+                () -> locker.tryLockAndExecuteForStatus(new Object(), () -> fail("Deadline is over"), 1, TimeUnit.SECONDS)));
+
+        release.countDown();
+        result = locker.tryLockAndExecuteForResult(key1, () -> "result", 1, TimeUnit.SECONDS);
+        assertEquals(LockStatus.EXECUTED, result.getStatus());
+        assertEquals("result", result.getValue());
+        AtomicBoolean executed = new AtomicBoolean();
+        assertEquals(LockStatus.EXECUTED, locker.tryLockAndExecuteForStatus(key1, () -> executed.set(true), 1, TimeUnit.SECONDS));
+        assertTrue(executed.get());
+    }
+
+    @Test
+    public void testTimeoutOfCaller() throws InterruptedException {
+        EntityLocker<Object> locker = new EntityLocker<>();
+        Object key1 = new Object();
+        CountDownLatch release = new CountDownLatch(1);
+        holdKeyInAnotherThread(locker, key1, release);
+
+        // The exception keeps the timeout given by the caller
+        try {
+            locker.tryLockAndExecute(key1, () -> fail("key1 is locked"), 500, TimeUnit.MICROSECONDS);
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertEquals(500, e.getTimeout());
+            assertEquals(TimeUnit.MICROSECONDS, e.getTimeUnit());
+            assertEquals("Lock timeout after: 500 microseconds", e.getMessage());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testCustomExecutor() throws InterruptedException {
+        // Executors written against the original interface get the status API from the default methods
+        DefaultLockExecutor delegate = new DefaultLockExecutor();
+        EntityLocker<Object> locker = new EntityLocker<>(new ILockExecutor() {
+            @Override
+            public <R> R execute(PacketReentrantLock lock, Callable<R> task) {
+                return delegate.execute(lock, task);
+            }
+
+            @Override
+            public void execute(PacketReentrantLock lock, Runnable task) {
+                delegate.execute(lock, task);
+            }
+
+            @Override
+            public <R> R tryExecute(PacketReentrantLock lock, Callable<R> task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+                return delegate.tryExecute(lock, task, lockTimeout, lockTimeoutUnit);
+            }
+
+            @Override
+            public void tryExecute(PacketReentrantLock lock, Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+                delegate.tryExecute(lock, task, lockTimeout, lockTimeoutUnit);
+            }
+        });
+
+        LockResult<String> result = locker.tryLockAndExecuteForResult(new Object(), () -> "result", 1, TimeUnit.SECONDS);
+        assertEquals(LockStatus.EXECUTED, result.getStatus());
+        assertEquals("result", result.getValue());
+        assertEquals(LockStatus.EXECUTED, locker.tryLockAndExecuteForStatus(new Object(), () -> {
+        }, 1, TimeUnit.SECONDS));
+        assertEquals(LockStatus.TIMEOUT, EntityLocker.withDeadline(0, TimeUnit.MILLISECONDS,
+                () -> locker.tryLockAndExecuteForStatus(new Object(), () -> fail("Deadline is over"), 1, TimeUnit.SECONDS)));
+
+        // A timeout of an acquisition nested into the task is thrown as by the built-in executors, the task is not reported as skipped
+        Object busyKey = new Object();
+        CountDownLatch release = new CountDownLatch(1);
+        holdKeyInAnotherThread(locker, busyKey, release);
+        AtomicInteger executions = new AtomicInteger();
+        try {
+            locker.tryLockAndExecuteForStatus(new Object(), () -> {
+                executions.incrementAndGet();
+                locker.tryLockAndExecute(busyKey, () -> fail("busyKey is locked"), 10, TimeUnit.MILLISECONDS);
+            }, 1, TimeUnit.SECONDS);
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertEquals(10, e.getTimeout());
+        }
+        try {
+            locker.tryLockAndExecuteForResult(new Object(), () -> {
+                executions.incrementAndGet();
+                return locker.tryLockAndExecute(busyKey, () -> "result", 10, TimeUnit.MILLISECONDS);
+            }, 1, TimeUnit.SECONDS);
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertEquals(10, e.getTimeout());
+        } finally {
+            release.countDown();
+        }
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void testExceptions() {
+        EntityLocker<Object> locker = new EntityLocker<>();
+
+        // Timeouts are stackless
+        TimeoutLockException timeout = new TimeoutLockException(500, TimeUnit.MILLISECONDS);
+        assertEquals(0, timeout.getStackTrace().length);
+        assertEquals("Lock timeout after: 500 milliseconds", timeout.getMessage());
+        assertEquals("Lock timeout after: 300 microseconds", new TimeoutLockException(300, TimeUnit.MICROSECONDS).getMessage());
+
+        // Failures of the task keep the cause
+        Exception failure = new Exception("failure");
+        try {
+            locker.lockAndExecute(new Object(), () -> {
+                throw failure;
+            });
+            fail("Expected EntityLockerException");
+        } catch (EntityLockerException e) {
+            assertSame(failure, e.getCause());
+        }
+        try {
+            locker.tryLockAndExecuteForResult(new Object(), () -> {
+                throw failure;
+            }, 1, TimeUnit.SECONDS);
+            fail("Expected EntityLockerException");
+        } catch (EntityLockerException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testLockEach() throws InterruptedException {
+        EntityLocker<Integer> locker = new EntityLocker<>();
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            keys.add(i % 5_000);
+        }
+        keys.add(null);
+
+        // Key 0 is locked by another thread for a while, so it has to be retried
+        CountDownLatch acquired = new CountDownLatch(1);
+        new Thread(() -> locker.lockAndExecute(0, () -> {
+            acquired.countDown();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        })).start();
+        acquired.await();
+
+        Map<Integer, AtomicInteger> executions = new ConcurrentHashMap<>();
+        Map<Integer, Integer> results = new ConcurrentHashMap<>();
+        AtomicInteger nullKeyResults = new AtomicInteger();
+        locker.lockEachAndExecute(keys, key -> {
+            if (key == null) {
+                return -1;
+            }
+            return executions.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        }, (key, result) -> {
+            if (key == null) {
+                nullKeyResults.incrementAndGet();
+            } else {
+                results.merge(key, result, Math::max);
+            }
+        });
+
+        // Every occurrence of the duplicate keys is executed
+        assertEquals(5_000, executions.size());
+        for (int key = 0; key < 5_000; key++) {
+            assertEquals(2, executions.get(key).get());
+            assertEquals(2, (int) results.get(key));
+        }
+        assertEquals(1, nullKeyResults.get());
+
+        AtomicInteger count = new AtomicInteger();
+        locker.lockEachAndExecute(keys, key -> {
+            count.incrementAndGet();
+        });
+        assertEquals(keys.size(), count.get());
+    }
+
+    @Test
+    public void testLockEachDeadline() throws InterruptedException {
+        EntityLocker<Integer> locker = new EntityLocker<>();
+        CountDownLatch release = new CountDownLatch(1);
+        holdKeyInAnotherThread(locker, 1, release);
+
+        // The deadline of the caller applies to the workers that wait for the busy key
+        try {
+            EntityLocker.withDeadline(200, TimeUnit.MILLISECONDS, () -> locker.lockEachAndExecute(Arrays.asList(1, 2, 3), key -> {
+            }));
+            fail("Expected TimeoutLockException");
+        } catch (TimeoutLockException e) {
+            assertNotNull(e.getMessage());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testLockEachFailure() throws InterruptedException {
+        EntityLocker<Integer> locker = new EntityLocker<>();
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            keys.add(i);
+        }
+
+        // No task is started or still running once the failure is thrown
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        try {
+            locker.lockEachAndExecute(keys, key -> {
+                started.incrementAndGet();
+                running.incrementAndGet();
+                try {
+                    if (key == 0) {
+                        throw new IllegalStateException("Key 0 failed");
+                    }
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+            fail("Expected a failure of key 0");
+        } catch (RuntimeException e) {
+            assertTrue(e instanceof IllegalStateException || e.getCause() instanceof IllegalStateException);
+        }
+        int startedOnFailure = started.get();
+        assertEquals(0, running.get());
+        Thread.sleep(100);
+        assertEquals(startedOnFailure, started.get());
+        assertTrue(startedOnFailure < keys.size());
+    }
+
+    @Test(timeout = 10_000)
+    public void testLockEachReentrant() {
+        for (boolean deadlockPrevention : new boolean[] {false, true}) {
+            EntityLocker<Integer> locker = new EntityLocker<>(deadlockPrevention);
+            List<Integer> keys = new ArrayList<>();
+            for (int i = 0; i < 1_000; i++) {
+                keys.add(i);
+            }
+
+            // The key held by the caller is executed by the caller, the workers can not reenter its lock
+            Thread caller = Thread.currentThread();
+            AtomicInteger count = new AtomicInteger();
+            AtomicReference<Thread> heldKeyThread = new AtomicReference<>();
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                locker.lockAndExecute(999, () -> locker.lockEachAndExecute(keys, key -> {
+                    count.incrementAndGet();
+                    if (key == 999) {
+                        heldKeyThread.set(Thread.currentThread());
+                    }
+                    return key;
+                }, null, pool));
+            } finally {
+                pool.shutdown();
+            }
+            assertEquals(keys.size(), count.get());
+            assertSame(caller, heldKeyThread.get());
+        }
+    }
+
+    @Test
+    public void testLockEachExecutedOnce() {
+        // An executor that reports a timeout after the task has run, the key must not be retried
+        DefaultLockExecutor delegate = new DefaultLockExecutor() {
+            @Override
+            public LockStatus tryExecuteForStatus(PacketReentrantLock lock, Runnable task, long lockTimeout, TimeUnit lockTimeoutUnit) {
+                super.tryExecuteForStatus(lock, task, lockTimeout, lockTimeoutUnit);
+                return LockStatus.TIMEOUT;
+            }
+        };
+        EntityLocker<Integer> locker = new EntityLocker<>(delegate);
+        AtomicInteger executions = new AtomicInteger();
+        try {
+            locker.lockEachAndExecute(Arrays.asList(1), key -> {
+                executions.incrementAndGet();
+            });
+            fail("Expected EntityLockerException");
+        } catch (EntityLockerException e) {
+            assertNotNull(e.getMessage());
+        }
+        assertEquals(1, executions.get());
+    }
+
+    /**
+     * Starts a thread that locks the key until the release latch is counted down, and waits until the key is locked
+     */
+    private static <T> void holdKeyInAnotherThread(EntityLocker<T> locker, T key, CountDownLatch release) throws InterruptedException {
+        holdInAnotherThread(task -> locker.lockAndExecute(key, task), release);
+    }
+
+    private static void holdInAnotherThread(Consumer<Runnable> acquisition, CountDownLatch release) throws InterruptedException {
+        CountDownLatch acquired = new CountDownLatch(1);
+        new Thread(() -> acquisition.accept(() -> {
+            acquired.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        })).start();
+        acquired.await();
+    }
+
     private static void runReentrantThread(EntityLocker<Object> locker, Object key1, Object key2,
                                            AtomicReference<Exception> exception, CountDownLatch latch) {
         new Thread(() -> {
@@ -361,8 +860,10 @@ public class EntityLockerTest {
                         exception.set(e);
                     }
                 }, timeout, timeUnit);
-            } catch (IllegalMonitorStateException e) {
+            } catch (TimeoutLockException e) {
+                // The task is not executed without the lock
                 exception.set(e);
+                latch.countDown();
             }
         });
         thread.start();
@@ -0,0 +1,113 @@
+package utilities.entitylocker.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import utilities.entitylocker.EntityLocker;
+
+/**
+ * Benchmark of {@link EntityLocker} with a large number of threads contending over keys with a skewed (Zipf) distribution,
+ * 10% of the tasks lock a second key while holding the first one (in the ascending order, so there are no deadlocks).
+ *
+ * Every task runs in its own virtual thread when the JVM supports them (Java 21+), otherwise tasks run on a pool of platform threads.
+ * Run with -Djdk.tracePinnedThreads=full to check that the locker does not pin carrier threads.
+ *
+ * Usage: VirtualThreadContentionBenchmark [threads] [keys] [hold micros] [deadlock-prevention]
+ */
+public class VirtualThreadContentionBenchmark {
+
+    private static final double ZIPF_EXPONENT = 1.1;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        long holdNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 2 ? Long.parseLong(args[2]) : 50);
+        boolean deadlockPrevention = args.length > 3 && "deadlock-prevention".equals(args[3]);
+
+        EntityLocker<Integer> locker = new EntityLocker<>(deadlockPrevention);
+        double[] keyDistribution = zipfDistribution(keys);
+        long[] waits = new long[threads];
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = newVirtualThreadExecutor();
+        boolean virtual = executor != null;
+        if (!virtual) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
+        }
+        System.out.println("Running " + threads + " tasks over " + keys + " keys on " + (virtual ? "virtual" : "platform")
+                + " threads, deadlock prevention: " + deadlockPrevention);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final int task = i;
+            executor.execute(() -> {
+                int key = nextKey(keyDistribution);
+                long requested = System.nanoTime();
+                try {
+                    locker.lockAndExecute(key, () -> {
+                        waits[task] = System.nanoTime() - requested;
+                        if (task % 10 == 0) {
+                            int nestedKey = nextKey(keyDistribution);
+                            if (nestedKey > key) {
+                                locker.lockAndExecute(nestedKey, () -> LockSupport.parkNanos(holdNanos));
+                            }
+                        }
+                        LockSupport.parkNanos(holdNanos);
+                    });
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(waits);
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("elapsed: %d ms, throughput: %.1f tasks/s, failures: %d%n",
+                TimeUnit.NANOSECONDS.toMillis(elapsed), threads * (double) TimeUnit.SECONDS.toNanos(1) / elapsed, failures.get());
+        System.out.printf("wait p50: %d us, p99: %d us, p99.9: %d us, max: %d us%n",
+                micros(waits, 0.5), micros(waits, 0.99), micros(waits, 0.999), micros(waits, 1));
+        System.out.printf("used heap: %d MB%n", (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    }
+
+    /**
+     * @return executor that starts a virtual thread per task or null if the JVM does not support virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static double[] zipfDistribution(int keys) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < keys; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int nextKey(double[] keyDistribution) {
+        int index = Arrays.binarySearch(keyDistribution, ThreadLocalRandom.current().nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, keyDistribution.length - 1);
+    }
+
+    private static long micros(long[] sortedWaits, double quantile) {
+        int index = (int) Math.ceil(quantile * sortedWaits.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sortedWaits[Math.max(index, 0)]);
+    }
+}
@@ -0,0 +1,105 @@
+package utilities.entitylocker.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import utilities.entitylocker.EntityLocker;
+import utilities.entitylocker.executor.DeadlockPreventionLockExecutor;
+import utilities.entitylocker.executor.DefaultLockExecutor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for recording and replaying of lock traces. {@link LockTraceRecorder}, {@link LockTraceReplayer}.
+ */
+public class LockTraceTest {
+
+    @Test
+    public void testRecordAndRead() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LockTraceRecorder recorder = new LockTraceRecorder(out);
+        EntityLocker<String> locker = new EntityLocker<>(new TracingLockExecutor(new DefaultLockExecutor(), recorder));
+
+        locker.lockAndExecute("outer", () -> {
+            sleep(20);
+            locker.lockAndExecute("inner", () -> sleep(20));
+        });
+        String result = locker.lockAndExecute("callable", () -> "result");
+        assertEquals("result", result);
+        recorder.close();
+
+        List<LockTraceEvent> events = LockTraceReader.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(3, events.size());
+
+        // Events are ordered by the request time
+        LockTraceEvent outer = events.get(0);
+        LockTraceEvent inner = events.get(1);
+        assertEquals(Objects.hashCode("outer"), outer.getKeyHash());
+        assertEquals(Objects.hashCode("inner"), inner.getKeyHash());
+        assertEquals(Objects.hashCode("callable"), events.get(2).getKeyHash());
+        assertEquals(Thread.currentThread().getId(), outer.getThreadId());
+
+        assertTrue(outer.getHoldNanos() >= 40_000_000L);
+        assertTrue(inner.getHoldNanos() >= 20_000_000L);
+        assertTrue(inner.getRequestNanos() >= outer.getAcquireNanos());
+        assertTrue(inner.getReleaseNanos() <= outer.getReleaseNanos());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalidTrace() throws IOException {
+        LockTraceReader.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LockTraceRecorder recorder = new LockTraceRecorder(out);
+        EntityLocker<Integer> locker = new EntityLocker<>(new TracingLockExecutor(new DefaultLockExecutor(), recorder));
+
+        // 4 threads contend over 2 keys, every thread also takes a nested lock
+        CountDownLatch latch = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            final int key = i % 2;
+            new Thread(() -> {
+                for (int j = 0; j < 5; j++) {
+                    locker.lockAndExecute(key, () -> {
+                        sleep(2);
+                        locker.lockAndExecute(100 + key, () -> sleep(1));
+                    });
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        recorder.close();
+
+        List<LockTraceEvent> events = LockTraceReader.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(40, events.size());
+
+        LockTraceReplayer replayer = new LockTraceReplayer(events);
+        ReplayReport report = replayer.replay(new DefaultLockExecutor(), 2);
+        assertEquals(40, report.getOperations());
+        assertEquals(0, report.getFailures());
+        assertTrue(report.getThroughput() > 0);
+        assertTrue(report.getWaitPercentileNanos(50) <= report.getWaitPercentileNanos(99));
+        assertTrue(report.getWaitPercentileNanos(99) <= report.getWaitPercentileNanos(100));
+
+        report = replayer.replay(new DeadlockPreventionLockExecutor(), Double.POSITIVE_INFINITY);
+        assertEquals(40, report.getOperations());
+        assertEquals(0, report.getFailures());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}